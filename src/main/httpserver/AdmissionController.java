@@ -0,0 +1,235 @@
+package main.httpserver;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.OperatingSystemMXBean;
+import java.net.InetAddress;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Decides which connections and requests the server takes on.
+ * <p>
+ * A global connection cap pauses accepting once it is reached and resumes only after the
+ * number of open connections has dropped to the resume threshold. Each client IP is limited
+ * in its open connections and in its request rate. Client state lives in a bounded table whose
+ * idle entries expire.
+ */
+public class AdmissionController {
+
+    public enum Decision {
+        ACCEPT, SERVER_BUSY, CLIENT_LIMIT
+    }
+
+    private static final int DEFAULT_MAX_CONNECTIONS = defaultMaxConnections();
+    private static final long EVICT_RETRY_NANOS = TimeUnit.SECONDS.toNanos(1);
+
+    private final int maxConnections;
+    private final int resumeConnections;
+    private final int maxConnectionsPerClient;
+    private final long requestIntervalNanos;
+    private final long burstToleranceNanos;
+    private final int maxTrackedClients;
+    private final long clientExpiryNanos;
+
+    private final AtomicInteger connections = new AtomicInteger(0);
+    private final AtomicBoolean acceptPaused = new AtomicBoolean(false);
+    private final ConcurrentHashMap<InetAddress, Client> clients = new ConcurrentHashMap<>();
+    private long nextEvictNanos;
+
+    /**
+     * Uses a connection cap derived from the process file descriptor limit, so that the cap
+     * triggers before accept starts failing with "Too many open files".
+     */
+    public AdmissionController() {
+        this(DEFAULT_MAX_CONNECTIONS, DEFAULT_MAX_CONNECTIONS * 9 / 10, 64, 100, 200, 65_536, 60_000);
+    }
+
+    /**
+     * @param maxConnections          open connections at which accepting is paused
+     * @param resumeConnections       open connections at which accepting is resumed again
+     * @param maxConnectionsPerClient open connections allowed from a single IP
+     * @param requestsPerSecond       sustained request rate allowed from a single IP
+     * @param burst                   requests a single IP may send at once before being throttled
+     * @param maxTrackedClients       upper bound on the number of IPs kept in the client table
+     * @param clientExpiryMillis      idle time after which a client without connections is forgotten
+     */
+    public AdmissionController(final int maxConnections, final int resumeConnections,
+                               final int maxConnectionsPerClient, final int requestsPerSecond,
+                               final int burst, final int maxTrackedClients,
+                               final long clientExpiryMillis) {
+        if (maxConnections < 1 || resumeConnections < 0 || resumeConnections >= maxConnections) {
+            throw new IllegalArgumentException("invalid connection limits: max=" + maxConnections
+                    + ", resume=" + resumeConnections);
+        }
+        if (maxConnectionsPerClient < 1 || requestsPerSecond < 1 || burst < 1) {
+            throw new IllegalArgumentException("invalid client limits: connections="
+                    + maxConnectionsPerClient + ", rate=" + requestsPerSecond + ", burst=" + burst);
+        }
+        if (maxTrackedClients < 1 || clientExpiryMillis < 0) {
+            throw new IllegalArgumentException("invalid client table: size=" + maxTrackedClients
+                    + ", expiry=" + clientExpiryMillis);
+        }
+        this.maxConnections = maxConnections;
+        this.resumeConnections = resumeConnections;
+        this.maxConnectionsPerClient = maxConnectionsPerClient;
+        this.requestIntervalNanos = TimeUnit.SECONDS.toNanos(1) / requestsPerSecond;
+        this.burstToleranceNanos = requestIntervalNanos * (burst - 1);
+        this.maxTrackedClients = maxTrackedClients;
+        this.clientExpiryNanos = TimeUnit.MILLISECONDS.toNanos(clientExpiryMillis);
+        this.nextEvictNanos = System.nanoTime();
+    }
+
+    /**
+     * Returns the state kept for the given IP, or null when the client table is full.
+     * Called from the accept thread only.
+     */
+    public Client client(final InetAddress address) {
+        final long now = System.nanoTime();
+        final Client client = clients.get(address);
+        if (client != null) {
+            return client;
+        }
+        if (clients.size() >= maxTrackedClients) {
+            if (now - nextEvictNanos < 0) {
+                return null;
+            }
+            evict(now);
+            if (clients.size() >= maxTrackedClients) {
+                return null;
+            }
+        }
+        return clients.computeIfAbsent(address, key -> new Client(now));
+    }
+
+    /**
+     * Called from the accept thread only. On {@link Decision#ACCEPT} the connection has been
+     * counted and must later be handed back through {@link #release(Client)}.
+     */
+    public Decision admit(final Client client) {
+        if (client == null || connections.get() >= maxConnections) {
+            return Decision.SERVER_BUSY;
+        }
+        if (client.connections.incrementAndGet() > maxConnectionsPerClient) {
+            client.connections.decrementAndGet();
+            return Decision.CLIENT_LIMIT;
+        }
+        client.lastSeen.set(System.nanoTime());
+        connections.incrementAndGet();
+        return Decision.ACCEPT;
+    }
+
+    /**
+     * Returns true exactly once each time the server reaches the connection cap, i.e. when the
+     * caller should stop selecting OP_ACCEPT.
+     */
+    public boolean shouldPauseAccept() {
+        if (connections.get() < maxConnections || acceptPaused.compareAndSet(false, true) == false) {
+            return false;
+        }
+        // Connections released between the check and the pause could not see the pause yet and
+        // so will not resume accepting; undo it unless one of them already has.
+        return connections.get() > resumeConnections || acceptPaused.compareAndSet(true, false) == false;
+    }
+
+    /**
+     * Hands a connection back. Returns true when accepting was paused and the number of open
+     * connections has now dropped far enough for the caller to select OP_ACCEPT again.
+     */
+    public boolean release(final Client client) {
+        client.lastSeen.set(System.nanoTime());
+        client.connections.decrementAndGet();
+        final int open = connections.decrementAndGet();
+        return open <= resumeConnections && acceptPaused.compareAndSet(true, false);
+    }
+
+    public boolean tryAcquireRequest(final Client client) {
+        final long now = System.nanoTime();
+        client.lastSeen.set(now);
+        // Token bucket kept as the time at which it will be full again, so that taking a token
+        // is a single CAS.
+        while (true) {
+            final long full = client.fullAt.get();
+            final long base = full - now > 0 ? full : now;
+            if (base - now > burstToleranceNanos) {
+                return false;
+            }
+            if (client.fullAt.compareAndSet(full, base + requestIntervalNanos)) {
+                return true;
+            }
+        }
+    }
+
+    public boolean isAcceptPaused() {
+        return acceptPaused.get();
+    }
+
+    public int connections() {
+        return connections.get();
+    }
+
+    private static int defaultMaxConnections() {
+        final OperatingSystemMXBean os = ManagementFactory.getOperatingSystemMXBean();
+        if (os instanceof com.sun.management.UnixOperatingSystemMXBean) {
+            final long limit = ((com.sun.management.UnixOperatingSystemMXBean) os).getMaxFileDescriptorCount();
+            // Leave a quarter of the descriptors to selectors, files opened by handlers and the JVM.
+            return (int) Math.max(1, Math.min(10_000, limit * 3 / 4));
+        }
+        return 10_000;
+    }
+
+    /**
+     * Removes every expired entry and, if that is not enough, further entries without
+     * connections until the table is down to 7/8 of its bound, so that the full scan is paid
+     * once per batch of new clients rather than once per client.
+     */
+    private void evict(final long now) {
+        final int lowWater = maxTrackedClients - Math.max(1, maxTrackedClients / 8);
+        final List<Map.Entry<InetAddress, Client>> idle = new ArrayList<>();
+        final Iterator<Map.Entry<InetAddress, Client>> iter = clients.entrySet().iterator();
+        while (iter.hasNext()) {
+            final Map.Entry<InetAddress, Client> entry = iter.next();
+            final Client client = entry.getValue();
+            if (client.connections.get() > 0) {
+                continue;
+            }
+            if (now - client.lastSeen.get() > clientExpiryNanos) {
+                iter.remove();
+            } else {
+                idle.add(entry);
+            }
+        }
+        // Nothing more expired: give up the rate history of the least recently seen clients
+        // without connections rather than turn new clients away.
+        if (clients.size() > lowWater) {
+            idle.sort(Comparator.comparingLong(entry -> entry.getValue().lastSeen.get()));
+            for (final Map.Entry<InetAddress, Client> entry : idle) {
+                if (clients.size() <= lowWater) {
+                    break;
+                }
+                clients.remove(entry.getKey(), entry.getValue());
+            }
+        }
+        // Every entry holds connections: do not rescan on each new client until some are closed.
+        nextEvictNanos = clients.size() >= maxTrackedClients ? now + EVICT_RETRY_NANOS : now;
+    }
+
+    public static class Client {
+
+        private final AtomicInteger connections = new AtomicInteger(0);
+        private final AtomicLong fullAt;
+        private final AtomicLong lastSeen;
+
+        private Client(final long now) {
+            this.fullAt = new AtomicLong(now);
+            this.lastSeen = new AtomicLong(now);
+        }
+    }
+}
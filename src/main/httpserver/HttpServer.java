@@ -4,6 +4,7 @@ import java.io.ByteArrayOutputStream;
 import java.io.IOException;
 import java.io.PrintStream;
 import java.io.UncheckedIOException;
+import java.net.InetAddress;
 import java.net.InetSocketAddress;
 import java.net.StandardSocketOptions;
 import java.nio.ByteBuffer;
@@ -27,18 +28,29 @@ import java.util.stream.IntStream;
 public class HttpServer {
 
     private static final Logger logger = Logger.getLogger(HttpServer.class.getName());
+    private static final ByteBuffer SERVICE_UNAVAILABLE = createRejection(503, "Service Unavailable");
+    private static final ByteBuffer TOO_MANY_REQUESTS = createRejection(429, "Too Many Requests");
+    private static final long ACCEPT_BACKOFF_MILLIS = 100;
     private final String host;
     private final int port;
     private final HttpHandler handler;
+    private final AdmissionController admission;
     private final Worker acceptWorker;
+    private final Timer acceptBackoff = new Timer("accept-backoff", true);
     private final AtomicInteger counter = new AtomicInteger(0);
     private final List<Worker> ioWorkers;
     private ConcurrentHashMap<SocketChannel, Long> clients = new ConcurrentHashMap<SocketChannel, Long>();
 
     public HttpServer(final String host, final int port, final HttpHandler handler) {
+        this(host, port, handler, new AdmissionController());
+    }
+
+    public HttpServer(final String host, final int port, final HttpHandler handler,
+                      final AdmissionController admission) {
         this.host = host;
         this.port = port;
         this.handler = Objects.requireNonNull(handler);
+        this.admission = Objects.requireNonNull(admission);
         this.acceptWorker = new Worker(Selector::open);
         final int size = Runtime.getRuntime().availableProcessors() - 1;
         this.ioWorkers = IntStream.range(0, size)
@@ -61,6 +73,7 @@ public class HttpServer {
 
     public void stop() {
         logger.info(() -> "stop");
+        acceptBackoff.cancel();
         acceptWorker.shutdown();
         ioWorkers.forEach(Worker::shutdown);
     }
@@ -78,34 +91,129 @@ public class HttpServer {
         }
     }
 
+    private static ByteBuffer createRejection(final int statusCode, final String reasonPhrase) {
+        final Map<String, List<String>> headers = new HashMap<>();
+        headers.put("Content-Type", Arrays.asList("text/plain"));
+        headers.put("Connection", Arrays.asList("close"));
+        headers.put("Retry-After", Arrays.asList("1"));
+        final ByteBuffer entity = ByteBuffer.wrap((reasonPhrase + "\n").getBytes(StandardCharsets.US_ASCII));
+        final HttpResponse response = new HttpResponse(statusCode, reasonPhrase, headers, entity);
+        return new HttpResponseFormatter().format(response).asReadOnlyBuffer();
+    }
+
+    private void release(final SelectionKey acceptKey, final SocketChannel sc,
+                         final AdmissionController.Client client) {
+        clients.remove(sc);
+        if (admission.release(client)) {
+            logger.info(() -> "connections dropped below limit, resume accepting: " + admission.connections());
+            acceptWorker.execute(() -> {
+                if (acceptKey.isValid()) {
+                    acceptKey.interestOps(SelectionKey.OP_ACCEPT);
+                }
+            });
+        }
+    }
+
     private class AcceptHandler implements Handler {
 
         @Override
         public void handle(final SelectionKey key) throws IOException {
             final ServerSocketChannel ssc = (ServerSocketChannel) key.channel();
-            final SocketChannel sc = ssc.accept();
+            final SocketChannel sc;
+            try {
+                sc = ssc.accept();
+            } catch (final IOException e) {
+                // Typically EMFILE: stop selecting OP_ACCEPT for a while instead of spinning on it.
+                logger.log(Level.WARNING, "exception in accept, back off", e);
+                key.interestOps(0);
+                acceptBackoff.schedule(new TimerTask() {
+                    @Override
+                    public void run() {
+                        acceptWorker.execute(() -> {
+                            if (key.isValid() && admission.isAcceptPaused() == false) {
+                                key.interestOps(SelectionKey.OP_ACCEPT);
+                            }
+                        });
+                    }
+                }, ACCEPT_BACKOFF_MILLIS);
+                return;
+            }
+            if (sc == null) {
+                return;
+            }
+            try {
+                admit(key, sc);
+            } catch (final IOException | RuntimeException e) {
+                logger.log(Level.FINE, "exception in accept connection", e);
+                sc.close();
+            }
+        }
 
+        private void admit(final SelectionKey key, final SocketChannel sc) throws IOException {
+            sc.configureBlocking(false);
             sc.setOption(StandardSocketOptions.SO_KEEPALIVE, true);
             sc.setOption(StandardSocketOptions.SO_REUSEADDR, true);
-            sc.configureBlocking(false);
-            clients.put(sc, System.currentTimeMillis());
 
-            final int index = counter.getAndIncrement() % ioWorkers.size();
-            ioWorkers.get(index).register(sc, SelectionKey.OP_READ, new IOHandler());
+            final InetAddress address = ((InetSocketAddress) sc.getRemoteAddress()).getAddress();
+            final AdmissionController.Client client = admission.client(address);
+            final AdmissionController.Decision decision = admission.admit(client);
+            if (decision != AdmissionController.Decision.ACCEPT) {
+                reject(sc, decision == AdmissionController.Decision.CLIENT_LIMIT
+                        ? TOO_MANY_REQUESTS : SERVICE_UNAVAILABLE);
+                return;
+            }
+            try {
+                if (admission.shouldPauseAccept()) {
+                    key.interestOps(0);
+                    logger.warning(() -> "connection limit reached, pause accepting: " + admission.connections());
+                }
+                clients.put(sc, System.currentTimeMillis());
+
+                final int index = counter.getAndIncrement() % ioWorkers.size();
+                ioWorkers.get(index).register(sc, SelectionKey.OP_READ, new IOHandler(key, client));
+            } catch (final RuntimeException e) {
+                release(key, sc, client);
+                throw e;
+            }
+        }
+
+        private void reject(final SocketChannel sc, final ByteBuffer response) {
+            // Best effort: a fresh socket's send buffer takes the whole response without blocking.
+            try (sc) {
+                sc.write(response.duplicate());
+            } catch (final IOException e) {
+                logger.log(Level.FINE, "exception in reject connection", e);
+            }
         }
     }
 
     private class IOHandler implements Handler {
 
+        private final SelectionKey acceptKey;
+        private final AdmissionController.Client client;
         private HttpRequestParser parser = new HttpRequestParser();
         private final ByteBuffer buf = ByteBuffer.allocate(8192);
         private ByteBuffer responseEntity;
         private HttpRequest request;
+        private boolean released;
+
+        IOHandler(final SelectionKey acceptKey, final AdmissionController.Client client) {
+            this.acceptKey = acceptKey;
+            this.client = client;
+        }
 
         @Override
-        public void handle(final SelectionKey key) throws IOException {
-            ServerSocketChannel ssc = ServerSocketChannel.open();
+        public void handle(final SelectionKey key) {
             final SocketChannel sc = (SocketChannel) key.channel();
+            try {
+                process(key, sc);
+            } catch (final IOException | RuntimeException e) {
+                logger.log(Level.FINE, "exception in handle connection", e);
+                close(key, sc);
+            }
+        }
+
+        private void process(final SelectionKey key, final SocketChannel sc) throws IOException {
             if (key.isReadable()) {
                 int i;
                 while ((i = sc.read(buf)) > 0) {
@@ -114,9 +222,13 @@ public class HttpServer {
                     if (parsed) {
                         request = parser.build();
                         parser = new HttpRequestParser();
-                        final HttpResponse response = handle(request);
-                        final HttpResponseFormatter formatter = new HttpResponseFormatter();
-                        responseEntity = formatter.format(response);
+                        if (admission.tryAcquireRequest(client)) {
+                            final HttpResponse response = handle(request);
+                            final HttpResponseFormatter formatter = new HttpResponseFormatter();
+                            responseEntity = formatter.format(response);
+                        } else {
+                            responseEntity = TOO_MANY_REQUESTS.duplicate();
+                        }
                         if ((key.interestOps() & SelectionKey.OP_WRITE) != SelectionKey.OP_WRITE) {
                             key.interestOps(key.interestOps() | SelectionKey.OP_WRITE);
                         }
@@ -125,6 +237,10 @@ public class HttpServer {
                 }
                 if (i < 0) {
                     key.interestOps(key.interestOps() ^ SelectionKey.OP_READ);
+                    if ((key.interestOps() & SelectionKey.OP_WRITE) != SelectionKey.OP_WRITE) {
+                        close(key, sc);
+                        return;
+                    }
                 }
             }
             if (key.isWritable()) {
@@ -146,9 +262,7 @@ public class HttpServer {
                         } finally {
                             //TODO: 1.responseEntity가 남아 있으면 sleep을 작게 걸어본다
                             //TODO: 2.RST면 SERVER에 있는 데이터를 여러개로 쪼개서 수신할 수 있는지, Chunked\
-                            key.cancel();
-                            ssc.close();
-                            sc.close();
+                            close(key, sc);
                         }
                     }
 //                    if (connection.contains("keep-alive") == false) {
@@ -159,6 +273,25 @@ public class HttpServer {
             }
         }
 
+        private void close(final SelectionKey key, final SocketChannel sc) {
+            key.cancel();
+            try {
+                sc.close();
+            } catch (final IOException e) {
+                logger.log(Level.FINE, "exception in close connection", e);
+            } finally {
+                release(sc);
+            }
+        }
+
+        private void release(final SocketChannel sc) {
+            if (released) {
+                return;
+            }
+            released = true;
+            HttpServer.this.release(acceptKey, sc, client);
+        }
+
         private HttpResponse handle(final HttpRequest request) {
             try {
                 return handler.handle(request);
@@ -219,7 +352,11 @@ public class HttpServer {
 
         public void register(final AbstractSelectableChannel channel, final int op,
                              final Handler handler) {
-            queue.add(() -> channel.register(selector, op, handler));
+            execute(() -> channel.register(selector, op, handler));
+        }
+
+        public void execute(final IOAction action) {
+            queue.add(action);
             selector.wakeup();
         }
 